@@ -0,0 +1,39 @@
+/**
+ * k-nearest-neighbour graph produced by PSPTreeMap.kNearestNeighborGraph and
+ * PSPTreeMap.kNearestNeighborJoin, stored as flat primitive arrays.
+ * Vertex i is points[i]; its neighbours, closest first, are
+ * neighborPoints[neighbors[i * k + j]] at distances[i * k + j] for j = 0 ... k - 1.
+ * Rows with fewer than k neighbours are padded with -1 and positive infinity.
+ */
+public class KnnGraph {
+    public final int k;
+    public final Position[] points;
+    public final Position[] neighborPoints;
+    public final int[] neighbors;
+    public final double[] distances;
+
+    KnnGraph(int k, Position[] points, Position[] neighborPoints, int[] neighbors,
+             double[] distances) {
+        this.k = k;
+        this.points = points;
+        this.neighborPoints = neighborPoints;
+        this.neighbors = neighbors;
+        this.distances = distances;
+    }
+
+    /** Returns the number of vertices in the graph. */
+    public int size() {
+        return points.length;
+    }
+
+    /** Returns the index into neighborPoints of the Jth closest neighbour of vertex I,
+     *  or -1 if I has fewer than J + 1 neighbours. */
+    public int neighbor(int i, int j) {
+        return neighbors[i * k + j];
+    }
+
+    /** Returns the distance from vertex I to its Jth closest neighbour. */
+    public double distance(int i, int j) {
+        return distances[i * k + j];
+    }
+}
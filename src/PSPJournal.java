@@ -0,0 +1,393 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for a PSPTreeMap.
+ * Every put/remove/clear is appended to DIR/journal before it is applied to the tree.
+ * A checkpoint writes the full contents of the tree to DIR/checkpoint and compacts
+ * the journal back to zero length. On startup the checkpoint is loaded and the
+ * journal replayed on top of it.
+ *
+ * Every record is written through a FileChannel before the operation returns, so a
+ * crash of the process alone never loses it. The SyncPolicy decides how often the
+ * channel is forced to disk, and so what an OS crash or power loss can lose.
+ */
+public class PSPJournal<T> implements Closeable {
+
+    /** How often appended records are forced to stable storage. */
+    public enum SyncPolicy {
+        /** Fsync after every record. Nothing acknowledged is lost in an OS crash. */
+        ALWAYS,
+        /** Fsync once per group of records (group commit), and at most GROUP_DELAY_MS
+         *  after a record is written even if its group never fills. An OS crash can
+         *  lose the records of the last unforced group. */
+        GROUP,
+        /** Never fsync. An OS crash can lose any record the OS has not written back yet. */
+        NEVER
+    }
+
+    /** Converts values to and from the bytes stored in the journal. */
+    public interface Codec<T> {
+        byte[] encode(T value) throws IOException;
+        T decode(byte[] bytes) throws IOException;
+    }
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_BYTES = 8; // payload length + crc32
+    private static final int DEFAULT_GROUP_SIZE = 64;
+    private static final int BUFFER_BYTES = 1 << 16;
+    /** Longest time a record waits to be forced under SyncPolicy.GROUP. */
+    static final long GROUP_DELAY_MS = 50;
+
+    private final Path dir;
+    private final Codec<T> codec;
+    private final SyncPolicy policy;
+    private final int groupSize;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer;
+    private int pending; // records written but not yet forced
+    private final ScheduledExecutorService committer; // forces partial groups; GROUP only
+    private IOException failure; // first error from committer, reported by the next write
+
+    private PSPJournal(Path dir, Codec<T> codec, SyncPolicy policy, int groupSize)
+            throws IOException {
+        if (groupSize < 1) {
+            throw new IllegalArgumentException("groupSize must be positive");
+        }
+        this.dir = dir;
+        this.codec = codec;
+        this.policy = policy;
+        this.groupSize = groupSize;
+        Files.createDirectories(dir);
+        this.channel = FileChannel.open(dir.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        if (policy == SyncPolicy.GROUP) {
+            committer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "psp-journal-commit");
+                t.setDaemon(true);
+                return t;
+            });
+            committer.scheduleWithFixedDelay(this::commit, GROUP_DELAY_MS, GROUP_DELAY_MS,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            committer = null;
+        }
+    }
+
+    /** Forces any records written since the last sync; run periodically under GROUP. */
+    private synchronized void commit() {
+        try {
+            sync();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Opens (creating if necessary) the journal stored in DIR.
+     * @param dir Directory holding the journal and checkpoint files
+     * @param codec Codec used for values
+     * @param policy When appended records are forced to disk
+     * @param groupSize Number of records committed together under SyncPolicy.GROUP
+     * @return the opened journal, positioned at the end of any existing records
+     */
+    public static <T> PSPJournal<T> open(Path dir, Codec<T> codec, SyncPolicy policy,
+                                         int groupSize) throws IOException {
+        return new PSPJournal<>(dir, codec, policy, groupSize);
+    }
+
+    /** Opens the journal in DIR with group commit and the default group size. */
+    public static <T> PSPJournal<T> open(Path dir, Codec<T> codec) throws IOException {
+        return open(dir, codec, SyncPolicy.GROUP, DEFAULT_GROUP_SIZE);
+    }
+
+    /** Returns a codec that stores values with Java serialization. */
+    public static <T extends Serializable> Codec<T> serializingCodec() {
+        return new Codec<T>() {
+            @Override
+            public byte[] encode(T value) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T decode(byte[] bytes) throws IOException {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (T) in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Loads the latest checkpoint into TARGET and replays the journal on top of it.
+     * A torn or corrupt record at the tail of the journal (from a crash mid-write)
+     * ends the replay and is cut off so later appends start from a clean record boundary.
+     * @param target Map to apply the recovered operations to
+     */
+    public synchronized void replay(Map<Position, T> target) throws IOException {
+        Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            try (FileChannel in = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+                long valid = replay(in, target);
+                if (valid != in.size()) {
+                    throw new IOException("corrupt checkpoint " + checkpoint);
+                }
+            }
+        }
+        channel.position(0);
+        long valid = replay(channel, target);
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    /** Applies every intact record in IN to TARGET and returns the offset just past
+     *  the last intact record. */
+    private long replay(FileChannel in, Map<Position, T> target) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(in), BUFFER_BYTES));
+        long valid = 0;
+        while (true) {
+            byte[] payload;
+            try {
+                int length = data.readInt();
+                int checksum = data.readInt();
+                if (length < 1 || length > in.size() - valid - HEADER_BYTES) {
+                    return valid;
+                }
+                payload = new byte[length];
+                data.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return valid;
+                }
+            } catch (EOFException e) {
+                return valid;
+            }
+            apply(ByteBuffer.wrap(payload), target);
+            valid += HEADER_BYTES + payload.length;
+        }
+    }
+
+    /** Applies the single record held in PAYLOAD to TARGET. */
+    private void apply(ByteBuffer payload, Map<Position, T> target) throws IOException {
+        byte op = payload.get();
+        if (op == CLEAR) {
+            target.clear();
+            return;
+        }
+        double[] p = new double[payload.getInt()];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = payload.getDouble();
+        }
+        Position pos = new Position(p);
+        if (op == PUT) {
+            byte[] value = new byte[payload.remaining()];
+            payload.get(value);
+            target.put(pos, codec.decode(value));
+        } else if (op == REMOVE) {
+            target.remove(pos);
+        } else {
+            throw new IOException("unknown journal record type " + op);
+        }
+    }
+
+    /** Appends a put of VALUE at POS. */
+    public void logPut(Position pos, T value) {
+        try {
+            append(PUT, pos, codec.encode(value));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Appends a removal of POS. */
+    public void logRemove(Position pos) {
+        try {
+            append(REMOVE, pos, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Appends a clear of the whole map. */
+    public void logClear() {
+        try {
+            append(CLEAR, null, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Writes a record to the journal file and forces it according to the sync policy. */
+    private synchronized void append(byte op, Position pos, byte[] value) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        writeRecord(channel, op, pos, value);
+        drainTo(channel);
+        pending++;
+        switch (policy) {
+            case ALWAYS:
+                sync();
+                break;
+            case GROUP:
+                if (pending >= groupSize) {
+                    sync();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Writes one framed record to the buffer, draining the buffer to OUT first if the
+     *  record does not fit. */
+    private void writeRecord(FileChannel out, byte op, Position pos, byte[] value)
+            throws IOException {
+        int dim = pos == null ? 0 : pos.pos.length;
+        int length = 1 + (pos == null ? 0 : 4 + 8 * dim) + (value == null ? 0 : value.length);
+        int needed = HEADER_BYTES + length;
+        if (buffer.remaining() < needed) {
+            drainTo(out);
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(needed);
+            }
+        }
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0); // checksum, filled in below
+        buffer.put(op);
+        if (pos != null) {
+            buffer.putInt(dim);
+            for (double d : pos.pos) {
+                buffer.putDouble(d);
+            }
+        }
+        if (value != null) {
+            buffer.put(value);
+        }
+        crc.reset();
+        crc.update(buffer.array(), start + HEADER_BYTES, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /** Writes any buffered records to the channel without forcing them to disk. */
+    public synchronized void flush() throws IOException {
+        drainTo(channel);
+    }
+
+    /** Writes any buffered records and forces them to stable storage. */
+    public synchronized void sync() throws IOException {
+        flush();
+        if (pending > 0 && policy != SyncPolicy.NEVER) {
+            channel.force(false);
+        }
+        pending = 0;
+    }
+
+    /**
+     * Writes ENTRIES as the new checkpoint and compacts the journal.
+     * The checkpoint is written to a temporary file and atomically moved into place
+     * before the journal is truncated, so a crash at any point leaves either the old
+     * checkpoint with the full journal or the new checkpoint with a journal whose
+     * records are already reflected in it. Replaying puts/removes/clears on a state
+     * that already contains them is harmless, so both recover to the same map.
+     * @param entries Every entry currently in the map
+     */
+    public synchronized void checkpoint(Iterable<? extends Map.Entry<Position, T>> entries) throws IOException {
+        sync();
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Position, T> e : entries) {
+                writeRecord(out, PUT, e.getKey(), codec.encode(e.getValue()));
+                if (buffer.position() > buffer.capacity() / 2) {
+                    drainTo(out);
+                }
+            }
+            drainTo(out);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /** Forces the directory entry of the renamed checkpoint to disk so the rename cannot
+     *  be lost after the journal is truncated. Best-effort: some platforms cannot open
+     *  or force a directory, and there is nothing more to do on those. */
+    private void forceDirectory() {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // directories cannot be forced on this platform
+        }
+    }
+
+    /** Writes the buffer to OUT and clears it. */
+    private void drainTo(FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Returns the current length of the journal file in bytes, including buffered records. */
+    public synchronized long length() throws IOException {
+        return channel.size() + buffer.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (committer != null) {
+            committer.shutdown();
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1,5 +1,15 @@
 import metrics.DistanceMetric;
+import vantage.RandomVantageSelector;
+import vantage.VantageSelector;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Space-partitioning tree that uses hyperspheres to separate space into
@@ -7,12 +17,27 @@ import java.util.*;
  */
 public class PSPTreeMap<T> implements Map<Position, T> {
 
+    /** Batches smaller than this are inserted with plain sequential puts. */
+    private static final int PARALLEL_PUT_THRESHOLD = 1024;
+    /** InsertTasks holding at most this many nodes stop splitting and insert sequentially. */
+    private static final int SEQUENTIAL_INSERT_BATCH = 256;
+    /** Query subtrees with fewer nodes than this are joined without forking. */
+    private static final int PARALLEL_JOIN_THRESHOLD = 512;
+    /** Tells a tree when its snapshots have been garbage collected. */
+    private static final Cleaner SNAPSHOT_CLEANER = Cleaner.create();
+
     private int size;
     private PSPNode sentinel; // node of radius 0 centered at a random position
                               // in a cube of side length 2 centered at the origin
     private final int dimension;
     private final DistanceMetric distanceMetric;
     private final PSPNodeComparator nodeComparator;
+    private final VantageSelector vantageSelector; // picks vantage points for build
+    private final Random random; // used for the sentinel and by vantageSelector
+    private PSPJournal<T> journal; // optional write-ahead log of every mutation
+    private final boolean readOnly; // true for snapshots
+    private int epoch; // nodes stamped with an older epoch may be shared with a snapshot
+    private final AtomicInteger liveSnapshots = new AtomicInteger();
 
     /**
      * Creates and returns the sentinel node, a node with a radius of 0
@@ -23,48 +48,185 @@ public class PSPTreeMap<T> implements Map<Position, T> {
      */
     private PSPNode createSentinel() {
         double[] startPoint = new double[dimension];
-        Random r = new Random();
         for (int i = 0; i < dimension; i++) {
-            startPoint[i] = r.nextDouble();
+            startPoint[i] = random.nextDouble();
         }
-        return new PSPNode(new Position(startPoint), 0, null, null, null, null);
+        return new PSPNode(new Position(startPoint), 0, null, null, null);
     }
 
     public PSPTreeMap(DistanceMetric d, int dimension) {
+        this(d, dimension, new RandomVantageSelector());
+    }
+
+    /**
+     * Creates a tree whose bulk builds and subtree rebuilds pick vantage points with
+     * SELECTOR.
+     * @param d Metric to measure distances with
+     * @param dimension Dimension of every position in the tree
+     * @param selector Vantage point selection strategy
+     */
+    public PSPTreeMap(DistanceMetric d, int dimension, VantageSelector selector) {
+        this(d, dimension, selector, new Random());
+    }
+
+    /**
+     * Creates a tree like PSPTreeMap(d, dimension, selector) whose randomness all comes
+     * from SEED, so the same operations always build the same tree.
+     * @param d Metric to measure distances with
+     * @param dimension Dimension of every position in the tree
+     * @param selector Vantage point selection strategy
+     * @param seed Seed for the sentinel position and vantage point selection
+     */
+    public PSPTreeMap(DistanceMetric d, int dimension, VantageSelector selector, long seed) {
+        this(d, dimension, selector, new Random(seed));
+    }
+
+    private PSPTreeMap(DistanceMetric d, int dimension, VantageSelector selector, Random random) {
         this.distanceMetric = d;
         this.dimension = dimension;
         this.nodeComparator = new PSPNodeComparator();
+        this.vantageSelector = selector;
+        this.random = random;
         this.sentinel = createSentinel();
+        this.readOnly = false;
+    }
+
+    /** Creates a read-only snapshot sharing every node of SOURCE. */
+    private PSPTreeMap(PSPTreeMap<T> source) {
+        this.distanceMetric = source.distanceMetric;
+        this.dimension = source.dimension;
+        this.nodeComparator = new PSPNodeComparator();
+        this.vantageSelector = source.vantageSelector;
+        this.random = null; // snapshots never build
+        this.sentinel = new PSPNode(source.sentinel.position, 0, null, source.sentinel.outer, null);
+        this.size = source.size;
+        this.readOnly = true;
+    }
+
+    /**
+     * Returns an immutable view of this tree as it is now, in constant time. The snapshot
+     * supports every query (get, iteration, kNearestNeighbor, rangeSearch, ...) and may be
+     * read from other threads while this tree keeps being written to.
+     * Nothing is copied up front. Instead, later writes to this tree copy each node
+     * they would modify that the snapshot may still share (path copying), so writers never
+     * wait for readers. Once every snapshot has been garbage collected, writes go back to
+     * modifying nodes in place and the old copies are reclaimed with the snapshots.
+     * Like put, this must not be called concurrently with writes to this tree.
+     * A snapshot could otherwise be collected while one of its own methods is still
+     * walking its nodes, letting the writer modify them in place under the reader, so
+     * every read that walks nodes keeps the snapshot reachable until it returns.
+     * @return read-only snapshot of this tree
+     */
+    public PSPTreeMap<T> snapshot() {
+        if (readOnly) {
+            return this;
+        }
+        PSPTreeMap<T> snapshot = new PSPTreeMap<>(this);
+        epoch++;
+        sentinel.epoch = epoch; // the sentinel itself is never shared
+        AtomicInteger live = liveSnapshots;
+        live.incrementAndGet();
+        SNAPSHOT_CLEANER.register(snapshot, live::decrementAndGet);
+        return snapshot;
+    }
+
+    /** Throws UnsupportedOperationException if this tree is a snapshot. */
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("snapshots are read-only");
+        }
+    }
+
+    /**
+     * Returns N if this tree may modify it in place, or else a copy of N stamped with the
+     * current epoch. The caller must link the returned node in place of N.
+     */
+    private PSPNode own(PSPNode n) {
+        if (n.epoch == epoch || liveSnapshots.get() == 0) {
+            return n;
+        }
+        PSPNode copy = new PSPNode(n.position, n.radius, n.inner, n.outer, n.value);
+        copy.count = n.count;
+        copy.innerMin = n.innerMin;
+        copy.innerMax = n.innerMax;
+        copy.outerMin = n.outerMin;
+        copy.outerMax = n.outerMax;
+        copy.epoch = epoch;
+        return copy;
+    }
+
+    /** Replaces the child CHILD of PARENT with REPLACEMENT. */
+    private void relink(PSPNode parent, PSPNode child, PSPNode replacement) {
+        if (parent.inner == child) {
+            parent.inner = replacement;
+        } else {
+            parent.outer = replacement;
+        }
     }
 
     @Override
     public String toString() {
-        return "{\n" + sentinel.outer.toString() + "}";
+        try {
+            return "{\n" + sentinel.outer.toString() + "}";
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /**
+     * Makes this tree durable by logging every later put/remove/clear to JOURNAL.
+     * The journal's latest checkpoint and any operations logged after it are first
+     * replayed into this tree, so this must be called on an empty tree.
+     * @param journal Journal to recover from and append to
+     */
+    public void attachJournal(PSPJournal<T> journal) throws IOException {
+        checkWritable();
+        if (!isEmpty()) {
+            throw new IllegalStateException("journal must be attached to an empty tree");
+        }
+        journal.replay(this);
+        this.journal = journal;
+    }
+
+    /**
+     * Writes every entry of this tree as the journal's new checkpoint and compacts the
+     * journal, so recovery no longer has to replay the operations logged so far.
+     */
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("no journal attached");
+        }
+        journal.checkpoint(entrySet());
     }
 
     private class PSPNode implements Iterable<PSPNode> {
 
         Position position;
         double radius;
-        PSPNode parent;
         PSPNode inner;
         PSPNode outer;
         T value;
+        int count = 1; // number of nodes in the subtree rooted here, including this one
+        int epoch = PSPTreeMap.this.epoch; // epoch of the tree when this node was created
+        // lower/upper bounds on the distance from position to the nodes in the inner/outer
+        // subtree. insert and build keep them exact; after a removal they may be looser
+        // until rebuild. An empty side has min = +infinity and max = -infinity
+        double innerMin = Double.POSITIVE_INFINITY;
+        double innerMax = Double.NEGATIVE_INFINITY;
+        double outerMin = Double.POSITIVE_INFINITY;
+        double outerMax = Double.NEGATIVE_INFINITY;
 
         /**
          * Primary helper node building block of the PSPTree.
          * @param position double array of the position of the node
          * @param radius radius of the node's "region"
-         * @param parent parent of the node
          * @param inner inner child of the node
          * @param outer outer child of the node
          * @param value value stored within this node
          */
-        PSPNode(Position position, double radius, PSPNode parent, PSPNode inner, PSPNode outer,
-                T value) {
+        PSPNode(Position position, double radius, PSPNode inner, PSPNode outer, T value) {
             this.position = position;
             this.radius = radius;
-            this.parent = parent;
             this.inner = inner;
             this.outer = outer;
             this.value = value;
@@ -79,6 +241,36 @@ public class PSPTreeMap<T> implements Map<Position, T> {
             return this.position.distTo(other.position, distanceMetric);
         }
 
+        /** Returns whether a node DIST away from THIS belongs in the outer subtree. */
+        public boolean isOutside(double dist) {
+            return dist > radius;
+        }
+
+        /** Widens the bounds of the side a node DIST away from THIS falls on to include it. */
+        public void include(double dist) {
+            if (isOutside(dist)) {
+                outerMin = Math.min(outerMin, dist);
+                outerMax = Math.max(outerMax, dist);
+            } else {
+                innerMin = Math.min(innerMin, dist);
+                innerMax = Math.max(innerMax, dist);
+            }
+        }
+
+        /** Resets the inner and outer bounds to those of empty subtrees. */
+        public void clearBounds() {
+            innerMin = Double.POSITIVE_INFINITY;
+            innerMax = Double.NEGATIVE_INFINITY;
+            outerMin = Double.POSITIVE_INFINITY;
+            outerMax = Double.NEGATIVE_INFINITY;
+        }
+
+        /** Returns whether a subtree whose nodes lie between MIN and MAX away from THIS
+         *  can contain a node within R of a point DIST away from THIS. */
+        public boolean mayContain(double min, double max, double dist, double r) {
+            return dist - r <= max && dist + r >= min;
+        }
+
         /** Returns whether THIS is located at POS. */
         public boolean isAt(Position pos) {
             return position.equals(pos);
@@ -138,7 +330,7 @@ public class PSPTreeMap<T> implements Map<Position, T> {
 
     /** Used for creating dummy nodes with certain radii for range searches near POS. */
     private PSPNode dummyNode(Position pos, double r) {
-        PSPNode n = new PSPNode(pos, r, null, null, null, null);
+        PSPNode n = new PSPNode(pos, r, null, null, null);
         n.position = pos;
         n.radius = r;
         return n;
@@ -202,67 +394,165 @@ public class PSPTreeMap<T> implements Map<Position, T> {
      */
     private T delete(Position pos) {
         PSPNode dummy = dummyNode(pos);
+        List<PSPNode> ancestors = new ArrayList<>();
         PSPNode n = sentinel.outer;
         while (n != null && !n.isAt(pos)) {
-            int cmp = nodeComparator.compare(n, dummy);
-            if (cmp > 0) { // pos is outside n, n = p.outer
+            ancestors.add(n);
+            if (nodeComparator.compare(n, dummy) > 0) { // pos is outside n
                 n = n.outer;
             } else {
                 n = n.inner;
             }
         }
-
         if (n == null) {
             return null;
         }
 
-        int cmp = nodeComparator.compare(n.parent, n);
-        // determines whether n is inside/outside of its parent
-        // >0 n = p.outer
-        // <=0 n = p.inner
+        PSPNode parent = sentinel;
+        for (int i = 0; i < ancestors.size(); i++) {
+            PSPNode a = own(ancestors.get(i));
+            relink(parent, ancestors.get(i), a);
+            ancestors.set(i, a);
+            parent = a;
+        }
 
-        if (n.isLeaf()) { // n has no children
-            childNullSet(cmp, n.parent);
-        } else if (n.inner == null || n.outer == null) { // n has one child
-            PSPNode child;
-            if (n.inner == null) {
-                child = n.outer;
-            } else {
-                child = n.inner;
+        // Every node below n lies in n's slot, so anything rearranged within that slot
+        // still satisfies the ancestors. A lone child takes n's place as it is; with two
+        // children the larger one takes n's place and the smaller one is reinserted into it.
+        PSPNode replacement;
+        if (n.inner == null || n.outer == null) {
+            replacement = n.inner == null ? n.outer : n.inner;
+        } else {
+            PSPNode larger = n.inner.count >= n.outer.count ? n.inner : n.outer;
+            PSPNode smaller = larger == n.inner ? n.outer : n.inner;
+            replacement = own(larger);
+            reinsert(smaller, replacement);
+        }
+        relink(parent, n, replacement);
+
+        // the ancestors' shells still contain everything left below them, so they stay
+        // valid without a rescan; they only tighten again on rebuild
+        for (PSPNode a : ancestors) {
+            a.count--;
+        }
+        if (replacement == null) {
+            if (parent.inner == null) {
+                parent.innerMin = Double.POSITIVE_INFINITY;
+                parent.innerMax = Double.NEGATIVE_INFINITY;
+            }
+            if (parent.outer == null) {
+                parent.outerMin = Double.POSITIVE_INFINITY;
+                parent.outerMax = Double.NEGATIVE_INFINITY;
             }
-            nodeSetWithCmp(cmp, n.parent, child);
-        } else { // n has two children
-            childNullSet(cmp, n.parent);
-            insert(n.inner);
-            insert(n.outer);
         }
 
-        n.inner = null;
-        n.outer = null;
         size--;
         return n.value;
     }
 
-    /**Sets the appropriate child of PARENT to be null depending on the value of CMP. */
-    private void childNullSet(int cmp, PSPNode parent) {
-        if (cmp > 0) {
-            parent.outer = null;
-        } else {
-            parent.inner = null;
+    /** Inserts a fresh copy of every node in the subtree rooted at FROM into the subtree
+     *  rooted at START, leaving FROM itself untouched for any snapshot sharing it. */
+    private void reinsert(PSPNode from, PSPNode start) {
+        if (from == null) {
+            return;
+        }
+        insert(start, new PSPNode(from.position, 0, null, null, from.value));
+        reinsert(from.inner, start);
+        reinsert(from.outer, start);
+    }
+
+    /**
+     * Rebuilds NODES into a fresh subtree hanging below PARENT and returns its root,
+     * or null if NODES is empty. The vantage point is picked by this tree's
+     * VantageSelector, and its radius is the median distance to the others, so the two
+     * halves are split evenly. A node that ends up a leaf gets its distance to its parent
+     * as its radius, the same as a freshly inserted node.
+     * @param nodes Detached nodes owned by this tree to rebuild; their children are
+     *              overwritten
+     * @param parent Node the rebuilt subtree will hang below
+     * @return root of the rebuilt subtree
+     */
+    private PSPNode build(List<PSPNode> nodes, PSPNode parent) {
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        int v = 0;
+        if (nodes.size() > 1) {
+            v = vantageSelector.select(new AbstractList<double[]>() {
+                @Override
+                public double[] get(int i) {
+                    return nodes.get(i).position.pos;
+                }
+
+                @Override
+                public int size() {
+                    return nodes.size();
+                }
+            }, distanceMetric, random);
+        }
+        PSPNode vantage = nodes.get(v);
+        vantage.inner = null;
+        vantage.outer = null;
+        vantage.clearBounds();
+        vantage.count = 1;
+        if (nodes.size() == 1) {
+            vantage.radius = parent.distTo(vantage);
+            return vantage;
+        }
+
+        List<PSPNode> rest = new ArrayList<>(nodes.size() - 1);
+        double[] distances = new double[nodes.size() - 1];
+        for (PSPNode node : nodes) {
+            if (node != vantage) {
+                distances[rest.size()] = vantage.distTo(node);
+                rest.add(node);
+            }
+        }
+        double[] sorted = distances.clone();
+        Arrays.sort(sorted);
+        vantage.radius = sorted[(sorted.length - 1) / 2];
+        List<PSPNode> inside = new ArrayList<>();
+        List<PSPNode> outside = new ArrayList<>();
+        for (int i = 0; i < rest.size(); i++) {
+            vantage.include(distances[i]);
+            if (vantage.isOutside(distances[i])) {
+                outside.add(rest.get(i));
+            } else {
+                inside.add(rest.get(i));
+            }
         }
+        vantage.inner = build(inside, vantage);
+        vantage.outer = build(outside, vantage);
+        vantage.count = nodes.size();
+        return vantage;
     }
-    /**Sets the appropriate child of PARENT to be CHILD depending on the value of CMP.
-     * Also changes the parent of CHILD to be PARENT. Doesn't work with null child.*/
-    private void nodeSetWithCmp(int cmp, PSPNode parent, PSPNode child) {
-        assert child != null;
-        if (cmp > 0) {
-            child.outer = parent.outer;
+
+    /**
+     * Rebuilds the whole tree from scratch around vantage points picked by this tree's
+     * VantageSelector, splitting every subtree at its median distance. Useful after many
+     * inserts, since each inserted node is simply the vantage point of whatever later
+     * lands below it.
+     */
+    public void rebuild() {
+        checkWritable();
+        List<PSPNode> nodes = new ArrayList<>(size);
+        if (sentinel.outer != null) {
+            for (PSPNode n : sentinel.outer) {
+                nodes.add(own(n));
+            }
+        }
+        sentinel.outer = build(nodes, sentinel);
+    }
+
+    /** Hangs the new leaf CHILD below PARENT on the side that CHILD falls on.
+     *  The leaf's radius is its distance to PARENT. */
+    private void attach(PSPNode parent, PSPNode child) {
+        child.radius = parent.distTo(child);
+        if (parent == sentinel || nodeComparator.compare(parent, child) > 0) {
             parent.outer = child;
         } else {
-            child.inner = parent.inner;
             parent.inner = child;
         }
-        child.parent = parent;
     }
 
     @Override
@@ -296,11 +586,15 @@ public class PSPTreeMap<T> implements Map<Position, T> {
 
     @Override
     public T get(Object pos) {
-        PSPNode n = getNode((Position) pos);
-        if (n == null) {
-            return null;
+        try {
+            PSPNode n = getNode((Position) pos);
+            if (n == null) {
+                return null;
+            }
+            return n.value;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
         }
-        return n.value;
     }
 
     /**
@@ -310,60 +604,228 @@ public class PSPTreeMap<T> implements Map<Position, T> {
      * @return The node at POS, or null if no node exists at POS
      */
     private PSPNode getNode(Position pos) {
-        if (isEmpty()) {
-            return null;
-        }
-        PSPNode n = oneNearestNeighbor(pos);
-        if (n != null) {
-            if (n.isAt(pos)) {
-                return n;
+        PSPNode dummy = dummyNode(pos);
+        PSPNode n = sentinel.outer;
+        while (n != null && !n.isAt(pos)) {
+            if (nodeComparator.compare(n, dummy) > 0) { // pos is outside n
+                n = n.outer;
+            } else {
+                n = n.inner;
             }
         }
-        return null;
+        return n;
     }
 
-    /**Inserts the given node CHILD into this tree.
-     * Finds the appropriate parent automatically so specifying the
-     * parent is not necessary. */
-    private void insert(PSPNode child) {
-        child.parent = oneNearestNeighbor(child);
-        if (child.parent == null) {
-            child.parent = sentinel;
+    /**
+     * Inserts CHILD into the subtree rooted at START, descending once to either the
+     * node already located at CHILD's position or the leaf position CHILD belongs in.
+     * Every node passed on the way down has its subtree count raised if CHILD is added,
+     * and is first replaced by a copy if it may be shared with a snapshot.
+     * @param start Non-null root of the subtree to insert into, owned by this tree
+     * @param child Detached node to insert
+     * @return the existing node at CHILD's position, in which case CHILD was not
+     *         inserted, or null if CHILD was inserted
+     */
+    private PSPNode insert(PSPNode start, PSPNode child) {
+        List<PSPNode> path = new ArrayList<>();
+        PSPNode n = start;
+        while (true) {
+            if (n.isAt(child.position)) {
+                return n;
+            }
+            path.add(n);
+            double d = n.distTo(child);
+            n.include(d);
+            PSPNode next;
+            if (n.isOutside(d)) {
+                next = n.outer;
+            } else {
+                next = n.inner;
+            }
+            if (next == null) {
+                attach(n, child);
+                for (PSPNode p : path) {
+                    p.count++;
+                }
+                return null;
+            }
+            PSPNode owned = own(next);
+            relink(n, next, owned);
+            n = owned;
         }
-        child.radius = child.parent.distTo(child);
-        int cmp = nodeComparator.compare(child.parent, child);
-        nodeSetWithCmp(cmp, child.parent, child);
     }
 
-    @Override
-    public T put(Position pos, T value) {
-        PSPNode n = getNode(pos);
+    /** Puts VALUE at POS without journaling it. Returns the previous value, if any. */
+    private T upsert(Position pos, T value) {
+        PSPNode newNode = new PSPNode(pos, 0, null, null, value);
+        if (sentinel.outer == null) {
+            attach(sentinel, newNode);
+            size++;
+            return null;
+        }
+        sentinel.outer = own(sentinel.outer);
+        PSPNode n = insert(sentinel.outer, newNode);
         if (n != null) {
             T old = n.value;
             n.value = value;
             return old;
         }
-        PSPNode newNode = new PSPNode(pos, 0, null, null, null, value);
-        insert(newNode);
         size++;
         return null;
     }
 
+    @Override
+    public T put(Position pos, T value) {
+        checkWritable();
+        if (journal != null) {
+            journal.logPut(pos, value);
+        }
+        return upsert(pos, value);
+    }
+
+    /**
+     * Removes the entry at POS. A removed node with at most one child is spliced out in
+     * O(depth). Otherwise the smaller of its two subtrees is reinserted into the larger,
+     * which costs O(s * depth) for a smaller subtree of s nodes: removing a node high in
+     * a large tree, the root above all, still touches a large part of the tree. Removals
+     * do not tighten the distance shells of the nodes above; call rebuild to restore
+     * tight shells and balance after many removals.
+     */
     @Override
     public T remove(Object pos) {
+        checkWritable();
+        if (journal != null) {
+            journal.logRemove((Position) pos);
+        }
         return delete((Position) pos);
     }
 
+    /**
+     * Puts every entry of M into this tree. An empty tree is bulk built from M around
+     * vantage points picked by this tree's VantageSelector. Large batches going into a
+     * populated tree are split by the subtree each point falls into and the disjoint
+     * subtrees are filled in parallel.
+     */
     @Override
     public void putAll(Map<? extends Position, ? extends T> m) {
+        checkWritable();
+        List<PSPNode> batch = new ArrayList<>(m.size());
         for (Entry<? extends Position, ? extends T> entry : m.entrySet()) {
-            this.put(entry.getKey(), entry.getValue());
+            if (journal != null) {
+                journal.logPut(entry.getKey(), entry.getValue());
+            }
+            batch.add(new PSPNode(entry.getKey(), 0, null, null, entry.getValue()));
+        }
+        if (sentinel.outer == null) {
+            sentinel.outer = build(batch, sentinel);
+            size = batch.size();
+            return;
+        }
+        if (batch.size() < PARALLEL_PUT_THRESHOLD) {
+            for (PSPNode node : batch) {
+                upsert(node.position, node.value);
+            }
+            return;
+        }
+        sentinel.outer = own(sentinel.outer);
+        size += ForkJoinPool.commonPool().invoke(new InsertTask(sentinel.outer, batch));
+    }
+
+    /**
+     * Inserts a batch of detached nodes into the subtree rooted at a node. The batch is
+     * partitioned into the nodes falling inside and outside the root, and the two halves
+     * are inserted into the root's inner and outer subtrees by parallel subtasks. Tasks
+     * only ever modify their own subtree, whose root has already been made owned by this
+     * tree, so no locking is needed.
+     * Computes the number of nodes that were newly added (rather than overwriting an
+     * existing value).
+     */
+    private class InsertTask extends RecursiveTask<Integer> {
+        private final PSPNode root;
+        private final List<PSPNode> batch;
+
+        InsertTask(PSPNode root, List<PSPNode> batch) {
+            this.root = root;
+            this.batch = batch;
+        }
+
+        @Override
+        protected Integer compute() {
+            int added = 0;
+            if (batch.size() <= SEQUENTIAL_INSERT_BATCH) {
+                for (PSPNode child : batch) {
+                    PSPNode n = insert(root, child);
+                    if (n == null) {
+                        added++;
+                    } else {
+                        n.value = child.value;
+                    }
+                }
+                return added;
+            }
+
+            List<PSPNode> inside = new ArrayList<>();
+            List<PSPNode> outside = new ArrayList<>();
+            for (PSPNode child : batch) {
+                if (root.isAt(child.position)) {
+                    root.value = child.value;
+                    continue;
+                }
+                double d = root.distTo(child);
+                root.include(d);
+                if (root.isOutside(d)) {
+                    outside.add(child);
+                } else {
+                    inside.add(child);
+                }
+            }
+            added += seedChild(inside);
+            added += seedChild(outside);
+
+            if (root.inner != null) {
+                root.inner = own(root.inner);
+            }
+            if (root.outer != null) {
+                root.outer = own(root.outer);
+            }
+            List<InsertTask> tasks = new ArrayList<>(2);
+            if (!inside.isEmpty()) {
+                tasks.add(new InsertTask(root.inner, inside));
+            }
+            if (!outside.isEmpty()) {
+                tasks.add(new InsertTask(root.outer, outside));
+            }
+            for (InsertTask task : invokeAll(tasks)) {
+                added += task.join();
+            }
+            root.count += added;
+            return added;
+        }
+
+        /** If the side of ROOT that GROUP falls on is empty, attaches the last node of
+         *  GROUP there and removes it from GROUP. Returns the number of nodes attached. */
+        private int seedChild(List<PSPNode> group) {
+            if (group.isEmpty()) {
+                return 0;
+            }
+            PSPNode last = group.get(group.size() - 1);
+            boolean outside = nodeComparator.compare(root, last) > 0;
+            if ((outside ? root.outer : root.inner) != null) {
+                return 0;
+            }
+            attach(root, group.remove(group.size() - 1));
+            return 1;
         }
     }
 
     @Override
     public void clear() {
+        checkWritable();
+        if (journal != null) {
+            journal.logClear();
+        }
         sentinel = createSentinel();
+        size = 0;
     }
 
     @Override
@@ -399,23 +861,146 @@ public class PSPTreeMap<T> implements Map<Position, T> {
      * @return Iterator of Pair(position, value) over all nodes in the tree
      * */
     private Iterator<Pair<Position, T>> iterator() {
-        List<Pair<Position, T>> l = new ArrayList<>();
-        for (PSPNode n : sentinel.outer) {
-            l.add(n.toPair());
+        try {
+            List<Pair<Position, T>> l = new ArrayList<>();
+            if (sentinel.outer == null) {
+                return l.iterator();
+            }
+            for (PSPNode n : sentinel.outer) {
+                l.add(n.toPair());
+            }
+            return l.iterator();
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
         }
-        return l.iterator();
     }
 
-    private PSPNode oneNearestNeighbor(Position pos) {
-        return oneNearestNeighbor(dummyNode(pos));
+    /** Returns the number of nodes in the subtree rooted at N, which may be null. */
+    private int count(PSPNode n) {
+        return n == null ? 0 : n.count;
     }
-    /** Returns the direct nearest neighbor in the tree to P.*/
-    private PSPNode oneNearestNeighbor(PSPNode p) {
-        List<Pair<Double, PSPNode>> l = kNearestNeighbor(p, 1);
-        if (l.size() == 0) {
+
+    /**
+     * Returns an entry of this tree chosen uniformly at random, or null if the tree is
+     * empty. Walks a single root-to-node path, choosing each step in proportion to the
+     * subtree counts.
+     * @param random Source of randomness
+     * @return a uniformly random (position, value) pair
+     */
+    public Pair<Position, T> randomEntry(Random random) {
+        try {
+            PSPNode n = sentinel.outer;
+            while (n != null) {
+                int r = random.nextInt(n.count);
+                if (r == 0) {
+                    return n.toPair();
+                }
+                n = r <= count(n.inner) ? n.inner : n.outer;
+            }
             return null;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /**
+     * Returns K entries of this tree, each drawn uniformly at random with replacement.
+     * @param k Number of entries to draw
+     * @param random Source of randomness
+     * @return List of K (position, value) pairs, or an empty list if the tree is empty
+     */
+    public List<Pair<Position, T>> sample(int k, Random random) {
+        List<Pair<Position, T>> results = new ArrayList<>();
+        for (int i = 0; i < k && !isEmpty(); i++) {
+            results.add(randomEntry(random));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of entries within a hypersphere of radius r centered at POS.
+     * Subtrees whose distance shell lies entirely inside the hypersphere are counted
+     * in one step from their subtree count instead of being visited.
+     * @param pos Position where hypersphere is centered
+     * @param r Radius of hypersphere
+     * @return number of entries within R of POS
+     */
+    public int rangeCount(Position pos, double r) {
+        try {
+            return rangeCount(sentinel.outer, dummyNode(pos, r));
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /** Returns the number of nodes in the subtree rooted at START within GOAL's radius of GOAL. */
+    private int rangeCount(PSPNode start, PSPNode goal) {
+        if (start == null) {
+            return 0;
+        }
+        double dist = start.distTo(goal);
+        int c = dist <= goal.radius ? 1 : 0;
+        if (start.mayContain(start.innerMin, start.innerMax, dist, goal.radius)) {
+            c += dist + start.innerMax <= goal.radius
+                    ? count(start.inner) : rangeCount(start.inner, goal);
+        }
+        if (start.mayContain(start.outerMin, start.outerMax, dist, goal.radius)) {
+            c += dist + start.outerMax <= goal.radius
+                    ? count(start.outer) : rangeCount(start.outer, goal);
+        }
+        return c;
+    }
+
+    /**
+     * Estimates the number of entries within a hypersphere of radius r centered at POS
+     * without descending more than DEPTH levels below the root. Subtrees that are still
+     * only partly covered at that depth contribute the fraction of their distance shell
+     * covered by the hypersphere to the estimate, and anywhere from none to all of their
+     * nodes to the bounds.
+     * @param pos Position where hypersphere is centered
+     * @param r Radius of hypersphere
+     * @param depth Number of levels below the root to descend
+     * @return the estimate along with guaranteed lower and upper bounds on the count
+     */
+    public RangeEstimate estimateRangeCount(Position pos, double r, int depth) {
+        try {
+            RangeEstimate e = new RangeEstimate();
+            estimateRangeCount(sentinel.outer, dummyNode(pos, r), depth, e);
+            return e;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /** Adds the contribution of the subtree rooted at START to E. */
+    private void estimateRangeCount(PSPNode start, PSPNode goal, int depth, RangeEstimate e) {
+        if (start == null) {
+            return;
+        }
+        double dist = start.distTo(goal);
+        if (dist <= goal.radius) {
+            e.add(1, 1, 1);
+        }
+        estimateSide(start, start.inner, start.innerMin, start.innerMax, dist, goal, depth, e);
+        estimateSide(start, start.outer, start.outerMin, start.outerMax, dist, goal, depth, e);
+    }
+
+    /** Adds the contribution of CHILD, a child of START whose nodes lie between MIN and
+     *  MAX away from START, to E. START is DIST away from GOAL. */
+    private void estimateSide(PSPNode start, PSPNode child, double min, double max, double dist,
+                              PSPNode goal, int depth, RangeEstimate e) {
+        if (child == null || !start.mayContain(min, max, dist, goal.radius)) {
+            return;
+        }
+        if (dist + max <= goal.radius) {
+            e.add(child.count, child.count, child.count);
+        } else if (depth > 0) {
+            estimateRangeCount(child, goal, depth - 1, e);
+        } else {
+            double covered = Math.min(max, dist + goal.radius) - Math.max(min, dist - goal.radius);
+            double fraction = max > min ? Math.max(0, Math.min(1, covered / (max - min))) : 1;
+            e.add(fraction * child.count, 0, child.count);
         }
-        return l.get(0).last;
     }
 
     /**Returns the K closest nodes to P in ascending order.
@@ -425,12 +1010,16 @@ public class PSPTreeMap<T> implements Map<Position, T> {
      * @return List containing the K nearest neighbors to POS
      */
     public List<Pair<Double, Pair<Position, T>>> kNearestNeighbor(Position pos, int k) {
-        List<Pair<Double, PSPNode>> l = kNearestNeighbor(dummyNode(pos), k);
-        List<Pair<Double, Pair<Position, T>>> results = new ArrayList<>();
-        for (Pair<Double, PSPNode> pair : l) {
-            results.add(new Pair<>(pair.first, pair.last.toPair()));
+        try {
+            List<Pair<Double, PSPNode>> l = kNearestNeighbor(dummyNode(pos), k);
+            List<Pair<Double, Pair<Position, T>>> results = new ArrayList<>();
+            for (Pair<Double, PSPNode> pair : l) {
+                results.add(new Pair<>(pair.first, pair.last.toPair()));
+            }
+            return results;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
         }
-        return results;
     }
 
     /** Heavily inspired by Steve Hanov's VP-tree implementation.
@@ -445,56 +1034,63 @@ public class PSPTreeMap<T> implements Map<Position, T> {
         if (k == 0) {
             return new ArrayList<>();
         }
-        PriorityQueue<Pair<Double, PSPNode>> pq = new PriorityQueue<>(Entry.comparingByKey());
-        search(sentinel.outer, p, k, pq, Double.POSITIVE_INFINITY);
+        // max-heap, so the current k-th nearest node is always on top
+        PriorityQueue<Pair<Double, PSPNode>> pq =
+                new PriorityQueue<>(Entry.<Double, PSPNode>comparingByKey().reversed());
+        search(sentinel.outer, p, k, pq);
         List<Pair<Double, PSPNode>> results = new ArrayList<>();
         while (!pq.isEmpty()) {
             results.add(pq.poll());
         }
+        Collections.reverse(results);
         return results;
     }
 
+    /** Returns the distance to the farthest of the K nodes in PQ, or positive infinity
+     *  while fewer than K nodes have been found. */
+    private double tau(PriorityQueue<Pair<Double, PSPNode>> pq, int k) {
+        return pq.size() < k ? Double.POSITIVE_INFINITY : pq.peek().first;
+    }
+
     /**Heavily inspired by Steve Hanov's VP-tree implementation.
-     * Modifies PQ with appropriate START, K, TAU values to contain the k closest nodes to
-     * GOAL. Assumes K <= size.
+     * Modifies PQ with appropriate START, K values to contain the k closest nodes to
+     * GOAL. Assumes K <= size. A subtree is only searched if the shell between the
+     * min and max distances of its nodes from START intersects the ball of radius tau
+     * around GOAL, where tau is the farthest distance in PQ once it is full.
      * @param start Node to begin searching from
      * @param goal Target node
      * @param k How many neighbors to search for
-     * @param pq Priority queue to modify
-     * @param tau Farthest distance recorded while searching thus far
+     * @param pq Max-priority queue of the closest nodes found so far
      */
     private void search(PSPNode start, PSPNode goal, int k,
-                        PriorityQueue<Pair<Double, PSPNode>> pq, double tau) {
+                        PriorityQueue<Pair<Double, PSPNode>> pq) {
         if (start == null) {
             return;
         }
-        double dist = Math.abs(start.distTo(goal) - start.radius);
-        if (dist < tau) {
+        double dist = start.distTo(goal);
+        if (dist < tau(pq, k)) {
             if (pq.size() == k) {
                 pq.poll();
             }
             pq.add(new Pair<>(dist, start));
-            if (pq.size() == k) {
-                tau = pq.peek().first;
-            }
         }
         if (start.isLeaf()) {
             return;
         }
 
-        if (dist <= start.radius) {
-            if (dist - tau <= start.radius) {
-                search(start.inner, goal, k, pq, tau);
+        if (!start.isOutside(dist)) {
+            if (start.mayContain(start.innerMin, start.innerMax, dist, tau(pq, k))) {
+                search(start.inner, goal, k, pq);
             }
-            if (dist + tau >= start.radius) {
-                search(start.outer, goal, k, pq, tau);
+            if (start.mayContain(start.outerMin, start.outerMax, dist, tau(pq, k))) {
+                search(start.outer, goal, k, pq);
             }
         } else {
-            if (dist + tau >= start.radius) {
-                search(start.outer, goal, k, pq, tau);
+            if (start.mayContain(start.outerMin, start.outerMax, dist, tau(pq, k))) {
+                search(start.outer, goal, k, pq);
             }
-            if (dist - tau <= start.radius) {
-                search(start.inner, goal, k, pq, tau);
+            if (start.mayContain(start.innerMin, start.innerMax, dist, tau(pq, k))) {
+                search(start.inner, goal, k, pq);
             }
         }
 
@@ -502,13 +1098,330 @@ public class PSPTreeMap<T> implements Map<Position, T> {
 
 
     /**
-     * Returns the nodes within a hypersphere of radius r centered at POS.
+     * Returns the entries within a hypersphere of radius r centered at POS.
      * @param pos Position where hypersphere is centered
      * @param r Radius of hypersphere
-     * @return Array of nodes
+     * @return List of (position, value) pairs, in no particular order
      */
-    public PSPNode[] rangeSearch(Position pos, double r) {
-        PSPNode p = dummyNode(pos, r);
-        return null;
+    public List<Pair<Position, T>> rangeSearch(Position pos, double r) {
+        try {
+            List<Pair<Position, T>> results = new ArrayList<>();
+            rangeSearch(sentinel.outer, dummyNode(pos, r), results);
+            return results;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /**
+     * Adds every node in the subtree rooted at START lying within GOAL's radius
+     * of GOAL to RESULTS, skipping subtrees whose distance shell cannot reach GOAL.
+     * @param start Node to begin searching from
+     * @param goal Dummy node whose radius is the search radius
+     * @param results List to add matching entries to
+     */
+    private void rangeSearch(PSPNode start, PSPNode goal, List<Pair<Position, T>> results) {
+        if (start == null) {
+            return;
+        }
+        double dist = start.distTo(goal);
+        if (dist <= goal.radius) {
+            results.add(start.toPair());
+        }
+        if (start.mayContain(start.innerMin, start.innerMax, dist, goal.radius)) {
+            rangeSearch(start.inner, goal, results);
+        }
+        if (start.mayContain(start.outerMin, start.outerMax, dist, goal.radius)) {
+            rangeSearch(start.outer, goal, results);
+        }
+    }
+
+    /**
+     * Returns the K nearest neighbours of every entry in this tree, not counting the
+     * entry itself.
+     * @param k Number of neighbours to find for each entry
+     * @return graph whose vertices and neighbours are both the entries of this tree
+     */
+    public KnnGraph kNearestNeighborGraph(int k) {
+        FlatTree flat = flatten();
+        return join(flat, flat, k);
+    }
+
+    /**
+     * Returns, for every entry of QUERIES, its K nearest neighbours in this tree.
+     * Distances are measured with this tree's metric.
+     * @param queries Tree whose entries are the vertices of the graph
+     * @param k Number of neighbours to find for each vertex
+     * @return graph whose vertices are the entries of QUERIES and whose neighbours are
+     *         the entries of this tree
+     */
+    public KnnGraph kNearestNeighborJoin(PSPTreeMap<?> queries, int k) {
+        if (queries.dimension != dimension) {
+            throw new IllegalArgumentException("trees must be of equal dimension");
+        }
+        return join(queries.flatten(), flatten(), k);
+    }
+
+    /**
+     * Read-only copy of a tree's shape in primitive arrays, indexed in pre-order.
+     * radius[i] is node i's radius and shell[4i ... 4i + 3] are lower/upper bounds on the
+     * distances from node i to the nodes of its inner subtree and then its outer subtree.
+     */
+    private static class FlatTree {
+        final Position[] positions;
+        final int[] inner;
+        final int[] outer;
+        final int[] count;
+        final double[] radius;
+        final double[] shell;
+
+        FlatTree(int size) {
+            positions = new Position[size];
+            inner = new int[size];
+            outer = new int[size];
+            count = new int[size];
+            radius = new double[size];
+            shell = new double[4 * size];
+        }
+    }
+
+    /** Returns a FlatTree copy of this tree. */
+    private FlatTree flatten() {
+        try {
+            FlatTree flat = new FlatTree(count(sentinel.outer));
+            flatten(sentinel.outer, flat, 0);
+            return flat;
+        } finally {
+            Reference.reachabilityFence(this); // see snapshot()
+        }
+    }
+
+    /** Copies the subtree rooted at N into FLAT starting at index I and returns the index
+     *  of N, or -1 if N is null. */
+    private int flatten(PSPNode n, FlatTree flat, int i) {
+        if (n == null) {
+            return -1;
+        }
+        flat.positions[i] = n.position;
+        flat.count[i] = n.count;
+        flat.radius[i] = n.radius;
+        flat.shell[4 * i] = n.innerMin;
+        flat.shell[4 * i + 1] = n.innerMax;
+        flat.shell[4 * i + 2] = n.outerMin;
+        flat.shell[4 * i + 3] = n.outerMax;
+        flat.inner[i] = flatten(n.inner, flat, i + 1);
+        flat.outer[i] = flatten(n.outer, flat, i + 1 + count(n.inner));
+        return i;
+    }
+
+    /** Finds the K nearest nodes of REFERENCES for every node of QUERIES. When both are
+     *  the same FlatTree, a node is never its own neighbour. */
+    private KnnGraph join(FlatTree queries, FlatTree references, int k) {
+        int n = queries.positions.length;
+        JoinState state = new JoinState(queries, references, k);
+        if (n > 0 && references.positions.length > 0 && k > 0) {
+            ForkJoinPool.commonPool().invoke(new JoinTask(state, 0));
+        }
+        for (int i = 0; i < n; i++) {
+            state.sortRow(i);
+        }
+        return new KnnGraph(k, queries.positions, references.positions, state.neighbors,
+                state.distances);
+    }
+
+    /**
+     * Shared state of one kNN join. Row i of NEIGHBORS/DISTANCES is a max-heap of the
+     * best candidates found so far for query i, holding FOUND[i] entries. Each row is
+     * only ever written by the task that owns that part of the query tree.
+     */
+    private class JoinState {
+        final FlatTree queries;
+        final FlatTree references;
+        final boolean self;
+        final int k;
+        final int[] neighbors;
+        final double[] distances;
+        final int[] found;
+
+        JoinState(FlatTree queries, FlatTree references, int k) {
+            this.queries = queries;
+            this.references = references;
+            this.self = queries == references;
+            this.k = k;
+            int n = queries.positions.length;
+            neighbors = new int[n * k];
+            distances = new double[n * k];
+            found = new int[n];
+            Arrays.fill(neighbors, -1);
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        }
+
+        /** Returns the current k-th nearest distance of query Q. */
+        double kth(int q) {
+            return found[q] < k ? Double.POSITIVE_INFINITY : distances[q * k];
+        }
+
+        /** Returns the distance from query Q to reference R, reusing the distance already
+         *  computed if R is one of Q's candidates. */
+        double distance(int q, int r) {
+            if (self && q == r) {
+                return 0;
+            }
+            int base = q * k;
+            for (int i = 0; i < found[q]; i++) {
+                if (neighbors[base + i] == r) {
+                    return distances[base + i];
+                }
+            }
+            return queries.positions[q].distTo(references.positions[r], distanceMetric);
+        }
+
+        /** Offers reference R at distance DIST as a neighbour of query Q. */
+        void offer(int q, int r, double dist) {
+            if (self && q == r || dist >= kth(q)) {
+                return;
+            }
+            int base = q * k;
+            for (int i = 0; i < found[q]; i++) {
+                if (neighbors[base + i] == r) {
+                    return;
+                }
+            }
+            int i;
+            if (found[q] < k) { // sift up from the new last slot
+                i = found[q]++;
+                while (i > 0 && distances[base + (i - 1) / 2] < dist) {
+                    distances[base + i] = distances[base + (i - 1) / 2];
+                    neighbors[base + i] = neighbors[base + (i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+            } else { // replace the root and sift down
+                i = 0;
+                while (2 * i + 1 < k) {
+                    int c = 2 * i + 1;
+                    if (c + 1 < k && distances[base + c + 1] > distances[base + c]) {
+                        c++;
+                    }
+                    if (distances[base + c] <= dist) {
+                        break;
+                    }
+                    distances[base + i] = distances[base + c];
+                    neighbors[base + i] = neighbors[base + c];
+                    i = c;
+                }
+            }
+            distances[base + i] = dist;
+            neighbors[base + i] = r;
+        }
+
+        /** Offers the neighbours found so far for query P, and P itself in a self join,
+         *  as neighbours of query Q. */
+        void seed(int q, int p) {
+            if (self) {
+                offer(q, p, distance(q, p));
+            }
+            for (int i = 0; i < found[p]; i++) {
+                int r = neighbors[p * k + i];
+                offer(q, r, distance(q, r));
+            }
+        }
+
+        /** Sorts row Q closest first, keeping any padding at the end. */
+        void sortRow(int q) {
+            int base = q * k;
+            for (int end = found[q] - 1; end > 0; end--) { // heapsort: move max to END
+                double d = distances[base + end];
+                int r = neighbors[base + end];
+                distances[base + end] = distances[base];
+                neighbors[base + end] = neighbors[base];
+                int i = 0;
+                while (2 * i + 1 < end) {
+                    int c = 2 * i + 1;
+                    if (c + 1 < end && distances[base + c + 1] > distances[base + c]) {
+                        c++;
+                    }
+                    if (distances[base + c] <= d) {
+                        break;
+                    }
+                    distances[base + i] = distances[base + c];
+                    neighbors[base + i] = neighbors[base + c];
+                    i = c;
+                }
+                distances[base + i] = d;
+                neighbors[base + i] = r;
+            }
+        }
+    }
+
+    /**
+     * Finds the neighbours of every query in the subtree of query node Q with one
+     * shell-pruned search of the reference tree per query. Queries are searched in
+     * pre-order, and each starts out with its parent query's neighbours (and in a self
+     * join the parent itself) as candidates. These are nearly always close to the query,
+     * so its search prunes with a tight bound from the root on, and reaching one of them
+     * again costs no distance computation. Query subtrees fork subtasks, since they
+     * write to disjoint rows of the result.
+     */
+    private class JoinTask extends RecursiveAction {
+        private final JoinState state;
+        private final int q;
+
+        JoinTask(JoinState state, int q) {
+            this.state = state;
+            this.q = q;
+        }
+
+        @Override
+        protected void compute() {
+            join(q);
+        }
+
+        private void join(int q) {
+            FlatTree queries = state.queries;
+            search(q, 0);
+            int inner = queries.inner[q];
+            int outer = queries.outer[q];
+            if (inner != -1) {
+                state.seed(inner, q);
+            }
+            if (outer != -1) {
+                state.seed(outer, q);
+            }
+            if (queries.count[q] < PARALLEL_JOIN_THRESHOLD) {
+                if (inner != -1) {
+                    join(inner);
+                }
+                if (outer != -1) {
+                    join(outer);
+                }
+            } else {
+                List<JoinTask> tasks = new ArrayList<>(2);
+                if (inner != -1) {
+                    tasks.add(new JoinTask(state, inner));
+                }
+                if (outer != -1) {
+                    tasks.add(new JoinTask(state, outer));
+                }
+                invokeAll(tasks);
+            }
+        }
+
+        /** Offers every node of the reference subtree rooted at R that can still be one of
+         *  the K nearest to query Q, visiting the side Q falls on first. */
+        private void search(int q, int r) {
+            FlatTree references = state.references;
+            double dist = state.distance(q, r);
+            state.offer(q, r, dist);
+            boolean outsideFirst = dist > references.radius[r];
+            for (int side = 0; side < 2; side++) {
+                boolean outside = outsideFirst == (side == 0);
+                int child = outside ? references.outer[r] : references.inner[r];
+                int i = 4 * r + (outside ? 2 : 0);
+                if (child != -1 && dist - state.kth(q) <= references.shell[i + 1]
+                        && dist + state.kth(q) >= references.shell[i]) {
+                    search(q, child);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,26 @@
+/**
+ * Approximate number of entries in a region, along with guaranteed bounds on the
+ * true count. Produced by PSPTreeMap.estimateRangeCount.
+ */
+public class RangeEstimate {
+    public double estimate;
+    public int lower;
+    public int upper;
+
+    /** Adds a part of the region with the given estimated, minimum and maximum count. */
+    void add(double estimate, int lower, int upper) {
+        this.estimate += estimate;
+        this.lower += lower;
+        this.upper += upper;
+    }
+
+    /** Returns the largest possible distance between the estimate and the true count. */
+    public double error() {
+        return Math.max(estimate - lower, upper - estimate);
+    }
+
+    @Override
+    public String toString() {
+        return estimate + " in [" + lower + ", " + upper + "]";
+    }
+}
@@ -0,0 +1,27 @@
+package vantage;
+
+import metrics.DistanceMetric;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Farthest-first selection: starting from a random point, picks the point farthest from
+ * it. Such a point lies near the edge of the data, where vantage points separate best.
+ */
+public class FarthestVantageSelector implements VantageSelector {
+    @Override
+    public int select(List<double[]> points, DistanceMetric metric, Random random) {
+        double[] start = points.get(random.nextInt(points.size()));
+        int farthest = 0;
+        double farthestDist = -1;
+        for (int i = 0; i < points.size(); i++) {
+            double d = metric.distBetween(start, points.get(i));
+            if (d > farthestDist) {
+                farthest = i;
+                farthestDist = d;
+            }
+        }
+        return farthest;
+    }
+}
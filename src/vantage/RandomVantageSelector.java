@@ -0,0 +1,14 @@
+package vantage;
+
+import metrics.DistanceMetric;
+
+import java.util.List;
+import java.util.Random;
+
+/** Picks a uniformly random point. */
+public class RandomVantageSelector implements VantageSelector {
+    @Override
+    public int select(List<double[]> points, DistanceMetric metric, Random random) {
+        return random.nextInt(points.size());
+    }
+}
@@ -0,0 +1,56 @@
+package vantage;
+
+import metrics.DistanceMetric;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Samples a few random candidates and picks the one whose distances to a random
+ * sample of the other points have the largest variance, as in Yianilos' original
+ * vp-tree construction. A large spread makes the median sphere separate the points well.
+ */
+public class SpreadVantageSelector implements VantageSelector {
+    private final int candidates;
+    private final int sampleSize;
+
+    /**
+     * @param candidates Number of random candidates to compare
+     * @param sampleSize Number of random points each candidate's spread is measured on
+     */
+    public SpreadVantageSelector(int candidates, int sampleSize) {
+        this.candidates = candidates;
+        this.sampleSize = sampleSize;
+    }
+
+    public SpreadVantageSelector() {
+        this(8, 32);
+    }
+
+    @Override
+    public int select(List<double[]> points, DistanceMetric metric, Random random) {
+        int n = points.size();
+        if (n <= 2) {
+            return 0;
+        }
+        int best = 0;
+        double bestSpread = -1;
+        for (int c = 0; c < candidates; c++) {
+            int candidate = random.nextInt(n);
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (int s = 0; s < sampleSize; s++) {
+                double d = metric.distBetween(points.get(candidate), points.get(random.nextInt(n)));
+                sum += d;
+                sumOfSquares += d * d;
+            }
+            double mean = sum / sampleSize;
+            double spread = sumOfSquares / sampleSize - mean * mean;
+            if (spread > bestSpread) {
+                best = candidate;
+                bestSpread = spread;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,18 @@
+package vantage;
+
+import metrics.DistanceMetric;
+
+import java.util.List;
+import java.util.Random;
+
+public interface VantageSelector {
+    /**
+     * Returns the index of the point in POINTS to use as the vantage point when building
+     * a subtree out of POINTS. POINTS is never empty.
+     * @param points Positions of the points in the subtree
+     * @param metric Metric the tree measures distances with
+     * @param random Source of randomness, seeded by the tree for reproducible builds
+     * @return index into POINTS
+     */
+    int select(List<double[]> points, DistanceMetric metric, Random random);
+}
@@ -1,8 +1,20 @@
 import metrics.EuclideanMetric;
 import org.junit.jupiter.api.Test;
+import vantage.FarthestVantageSelector;
+import vantage.RandomVantageSelector;
+import vantage.SpreadVantageSelector;
+import vantage.VantageSelector;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -55,6 +67,36 @@ class FunctionalityTest {
         assertEquals(expected.entrySet(), p.entrySet());
     }
 
+    @Test
+    void putOverwriteTest() {
+        Map<Position, String> p = createBasicPSPTreeMap();
+        assertEquals("B", p.put(b, "B2"));
+        assertEquals("B2", p.get(b));
+        assertNull(p.get(new Position(1, 1)));
+        assertEquals(6, p.size());
+    }
+
+    @Test
+    void putAllPopulatedTest() {
+        PSPTreeMap<Integer> p = new PSPTreeMap<>(new EuclideanMetric(), 3);
+        Map<Position, Integer> expected = new HashMap<>();
+        Random rand = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            Position pos = new Position(rand.nextInt(20), rand.nextInt(20), rand.nextInt(20));
+            p.put(pos, i); expected.put(pos, i);
+        }
+        Map<Position, Integer> batch = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            batch.put(new Position(rand.nextInt(20), rand.nextInt(20), rand.nextInt(20)), -i);
+        }
+        p.putAll(batch); expected.putAll(batch);
+        assertEquals(expected.size(), p.size());
+        assertEquals(expected.entrySet(), p.entrySet());
+        for (Position pos : expected.keySet()) {
+            assertEquals(expected.get(pos), p.get(pos));
+        }
+    }
+
     @Test
     void basicContainsKeyTest() {
         Map<Position, String> p = createBasicPSPTreeMap();
@@ -81,9 +123,352 @@ class FunctionalityTest {
         assertEquals(expected.entrySet(), p.entrySet());
     }
 
+    @Test
+    void journalReplayTest() throws IOException {
+        Path dir = Files.createTempDirectory("psp-journal");
+        Map<Position, String> expected = createBasicHashMap();
+
+        PSPTreeMap<String> p = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        p.attachJournal(journal);
+        p.put(a, "A");
+        p.put(b, "B");
+        p.put(c, "C");
+        p.checkpoint();
+        assertEquals(0, journal.length());
+        p.put(d, "D");
+        p.put(e, "E");
+        p.put(f, "F");
+        journal.close();
+
+        PSPTreeMap<String> recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals(expected.entrySet(), recovered.entrySet());
+
+        recovered.remove(f); expected.remove(f);
+        recovered.put(a, "A2"); expected.put(a, "A2");
+        journal.close();
+
+        recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals(expected.entrySet(), recovered.entrySet());
+        journal.close();
+    }
+
+    @Test
+    void journalWritesBeforeReturnTest() throws IOException {
+        // a crashed process never closes its journal; everything put so far must already
+        // be in the file for a new process to recover
+        Path dir = Files.createTempDirectory("psp-journal");
+        Map<Position, String> expected = new HashMap<>();
+        PSPTreeMap<String> p = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        p.attachJournal(journal);
+        p.put(a, "A");
+        p.put(b, "B"); expected.put(b, "B");
+        p.remove(a);
+
+        PSPTreeMap<String> recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> other = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(other);
+        assertEquals(expected.entrySet(), recovered.entrySet());
+        other.close();
+        journal.close();
+    }
+
+    @Test
+    void journalCheckpointEmptyTest() throws IOException {
+        Path dir = Files.createTempDirectory("psp-journal");
+        PSPTreeMap<String> p = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        p.attachJournal(journal);
+        p.put(a, "A");
+        p.clear();
+        p.checkpoint();
+        assertEquals(0, journal.length());
+        journal.close();
+
+        PSPTreeMap<String> recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertTrue(recovered.isEmpty());
+        assertTrue(recovered.entrySet().isEmpty());
+        recovered.put(b, "B");
+        journal.close();
+
+        recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals("B", recovered.get(b));
+        assertEquals(1, recovered.size());
+        journal.close();
+    }
+
+    @Test
+    void journalTornTailTest() throws IOException {
+        Path dir = Files.createTempDirectory("psp-journal");
+        Map<Position, String> expected = new HashMap<>();
+        PSPTreeMap<String> p = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        p.attachJournal(journal);
+        for (int i = 0; i < 9; i++) {
+            p.put(new Position(i, i), "v" + i); expected.put(new Position(i, i), "v" + i);
+        }
+        long intact = journal.length();
+        p.put(new Position(9, 9), "v9");
+        journal.close();
+
+        // cut the last record off partway through, as a crash mid-write would
+        Path file = dir.resolve("journal");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, (int) (intact + bytes.length) / 2));
+
+        PSPTreeMap<String> recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals(expected.entrySet(), recovered.entrySet());
+        assertEquals(intact, journal.length());
+
+        // appends after the cut must start on a clean record boundary
+        recovered.put(new Position(10, 10), "v10"); expected.put(new Position(10, 10), "v10");
+        recovered.remove(new Position(0, 0)); expected.remove(new Position(0, 0));
+        journal.close();
+
+        recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals(expected.entrySet(), recovered.entrySet());
+        journal.close();
+    }
+
+    @Test
+    void journalCheckpointLargeValuesTest() throws IOException {
+        Path dir = Files.createTempDirectory("psp-journal");
+        Map<Position, String> expected = new HashMap<>();
+        PSPTreeMap<String> p = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        PSPJournal<String> journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        p.attachJournal(journal);
+        for (int i = 0; i < 20; i++) {
+            String value = String.valueOf(i).repeat(i % 2 == 0 ? 20000 : 50000);
+            p.put(new Position(i, -i), value); expected.put(new Position(i, -i), value);
+        }
+        p.checkpoint();
+        journal.close();
+
+        PSPTreeMap<String> recovered = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        journal = PSPJournal.open(dir, PSPJournal.serializingCodec());
+        recovered.attachJournal(journal);
+        assertEquals(expected.size(), recovered.size());
+        assertEquals(expected.entrySet(), recovered.entrySet());
+        journal.close();
+    }
 
     @Test
     void rangeSearch() {
+        PSPTreeMap<String> p = (PSPTreeMap<String>) createBasicPSPTreeMap();
+        Map<Position, String> expected = new HashMap<>();
+        expected.put(a, "A");
+        expected.put(e, "E");
+        Map<Position, String> found = new HashMap<>();
+        for (Pair<Position, String> pair : p.rangeSearch(new Position(0, -1), 2)) {
+            found.put(pair.first, pair.last);
+        }
+        assertEquals(expected, found);
+        assertEquals(6, p.rangeSearch(a, 100).size());
+        assertEquals(0, p.rangeSearch(new Position(100, 100), 1).size());
+    }
+
+    @Test
+    void kNearestNeighborMatchesBruteForceTest() {
+        EuclideanMetric metric = new EuclideanMetric();
+        PSPTreeMap<Integer> t = new PSPTreeMap<>(metric, 3);
+        Map<Position, Integer> expected = new HashMap<>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            Position pos = new Position(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+            t.put(pos, i); expected.put(pos, i);
+            if (i % 3 == 0) {
+                Position removed = expected.keySet().iterator().next();
+                t.remove(removed); expected.remove(removed);
+            }
+        }
+        for (int q = 0; q < 50; q++) {
+            Position goal = new Position(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+            List<Double> distances = new ArrayList<>();
+            for (Position pos : expected.keySet()) {
+                distances.add(goal.distTo(pos, metric));
+            }
+            Collections.sort(distances);
+            List<Pair<Double, Pair<Position, Integer>>> result = t.kNearestNeighbor(goal, 10);
+            assertEquals(10, result.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(distances.get(i), result.get(i).first, 1e-12);
+            }
+            int inRange = 0;
+            for (double d : distances) {
+                if (d <= 0.5) {
+                    inRange++;
+                }
+            }
+            assertEquals(inRange, t.rangeSearch(goal, 0.5).size());
+        }
+    }
+
+    @Test
+    void rangeCountTest() {
+        PSPTreeMap<Integer> t = new PSPTreeMap<>(new EuclideanMetric(), 2);
+        Random rand = new Random(2);
+        for (int i = 0; i < 3000; i++) {
+            t.put(new Position(rand.nextGaussian(), rand.nextGaussian()), i);
+            if (i % 4 == 0) {
+                t.remove(t.randomEntry(rand).first);
+            }
+        }
+        for (int q = 0; q < 50; q++) {
+            Position goal = new Position(rand.nextGaussian(), rand.nextGaussian());
+            double r = rand.nextDouble() * 2;
+            int expected = t.rangeSearch(goal, r).size();
+            assertEquals(expected, t.rangeCount(goal, r));
+            RangeEstimate estimate = t.estimateRangeCount(goal, r, 4);
+            assertTrue(estimate.lower <= expected && expected <= estimate.upper);
+            assertTrue(Math.abs(estimate.estimate - expected) <= estimate.error());
+        }
+    }
+
+    @Test
+    void randomEntryTest() {
+        Map<Position, String> p = createBasicPSPTreeMap();
+        PSPTreeMap<String> t = (PSPTreeMap<String>) p;
+        Map<Position, Integer> hits = new HashMap<>();
+        Random rand = new Random(3);
+        for (Pair<Position, String> pair : t.sample(60000, rand)) {
+            assertEquals(p.get(pair.first), pair.last);
+            hits.merge(pair.first, 1, Integer::sum);
+        }
+        assertEquals(p.keySet(), hits.keySet());
+        for (int h : hits.values()) {
+            assertTrue(Math.abs(h - 10000) < 500);
+        }
+        assertNull(new PSPTreeMap<String>(new EuclideanMetric(), 2).randomEntry(rand));
+    }
+
+    @Test
+    void kNearestNeighborGraphTest() {
+        EuclideanMetric metric = new EuclideanMetric();
+        PSPTreeMap<Integer> t = new PSPTreeMap<>(metric, 3);
+        PSPTreeMap<Integer> queries = new PSPTreeMap<>(metric, 3);
+        Random rand = new Random(4);
+        for (int i = 0; i < 1500; i++) {
+            t.put(new Position(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian()), i);
+        }
+        for (int i = 0; i < 300; i++) {
+            queries.put(new Position(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian()), i);
+        }
+        int k = 5;
+
+        KnnGraph graph = t.kNearestNeighborGraph(k);
+        assertEquals(t.size(), graph.size());
+        for (int i = 0; i < graph.size(); i++) {
+            List<Pair<Double, Pair<Position, Integer>>> expected =
+                    t.kNearestNeighbor(graph.points[i], k + 1);
+            for (int j = 0; j < k; j++) {
+                assertEquals(expected.get(j + 1).first, graph.distance(i, j), 1e-12);
+                Position neighbor = graph.neighborPoints[graph.neighbor(i, j)];
+                assertEquals(graph.distance(i, j), graph.points[i].distTo(neighbor, metric), 1e-12);
+            }
+        }
+
+        KnnGraph join = t.kNearestNeighborJoin(queries, k);
+        assertEquals(queries.size(), join.size());
+        for (int i = 0; i < join.size(); i++) {
+            List<Pair<Double, Pair<Position, Integer>>> expected =
+                    t.kNearestNeighbor(join.points[i], k);
+            for (int j = 0; j < k; j++) {
+                assertEquals(expected.get(j).first, join.distance(i, j), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    void snapshotTest() throws InterruptedException {
+        PSPTreeMap<String> p = (PSPTreeMap<String>) createBasicPSPTreeMap();
+        Map<Position, String> expected = createBasicHashMap();
+        PSPTreeMap<String> snapshot = p.snapshot();
+
+        p.remove(b);
+        p.put(c, "C2");
+        p.put(new Position(1, 1), "G");
+        assertEquals(expected.entrySet(), snapshot.entrySet());
+        assertEquals("C", snapshot.get(c));
+        assertEquals("C2", p.get(c));
+        assertNull(p.get(b));
+        assertEquals(b, snapshot.kNearestNeighbor(new Position(4, 3), 1).get(0).last.first);
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.put(a, "A2"));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.remove(a));
+
+        // a reader scanning the snapshot never sees the writer's changes
+        Random rand = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            p.put(new Position(rand.nextGaussian(), rand.nextGaussian()), "x" + i);
+        }
+        PSPTreeMap<String> before = p.snapshot();
+        Map<Position, String> beforeExpected = new HashMap<>(p);
+        int[] failures = new int[1];
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 20; i++) {
+                if (before.size() != beforeExpected.size()
+                        || !beforeExpected.entrySet().equals(before.entrySet())) {
+                    failures[0]++;
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            p.put(new Position(rand.nextGaussian(), rand.nextGaussian()), "y" + i);
+            p.remove(p.randomEntry(rand).first);
+        }
+        reader.join();
+        assertEquals(0, failures[0]);
+        assertEquals(beforeExpected.entrySet(), before.entrySet());
+    }
+
+    @Test
+    void vantageSelectionTest() {
+        EuclideanMetric metric = new EuclideanMetric();
+        Map<Position, Integer> expected = new HashMap<>();
+        Random rand = new Random(6);
+        for (int i = 0; i < 2000; i++) {
+            expected.put(new Position(rand.nextGaussian() * 10, rand.nextGaussian()), i);
+        }
+        Position goal = new Position(0.5, 0.5);
+        List<Pair<Double, Pair<Position, Integer>>> nearest = null;
+        for (VantageSelector selector : new VantageSelector[] {new RandomVantageSelector(),
+            new SpreadVantageSelector(), new FarthestVantageSelector()}) {
+            PSPTreeMap<Integer> t = new PSPTreeMap<>(metric, 2, selector, 7);
+            t.putAll(expected);
+            assertEquals(expected.size(), t.size());
+            assertEquals(expected.entrySet(), t.entrySet());
+            for (Position pos : expected.keySet()) {
+                assertEquals(expected.get(pos), t.get(pos));
+            }
+            if (nearest == null) {
+                nearest = t.kNearestNeighbor(goal, 10);
+            }
+            assertEquals(nearest.toString(), t.kNearestNeighbor(goal, 10).toString());
+
+            PSPTreeMap<Integer> same = new PSPTreeMap<>(metric, 2, selector, 7);
+            same.putAll(expected);
+            assertEquals(t.toString(), same.toString());
+
+            Position removed = expected.keySet().iterator().next();
+            t.remove(removed);
+            t.rebuild();
+            assertEquals(expected.size() - 1, t.size());
+            assertNull(t.get(removed));
+            assertEquals(expected.size() - 1, t.rangeCount(goal, 1000));
+        }
     }
 
     @Test
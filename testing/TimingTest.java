@@ -1,14 +1,24 @@
 import com.google.common.base.Stopwatch;
 
+import metrics.DistanceMetric;
 import metrics.EuclideanMetric;
 import org.junit.jupiter.api.Test;
 import org.knowm.xchart.QuickChart;
 import org.knowm.xchart.SwingWrapper;
 import org.knowm.xchart.XYChart;
+import vantage.FarthestVantageSelector;
+import vantage.RandomVantageSelector;
+import vantage.SpreadVantageSelector;
+import vantage.VantageSelector;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.lang.Thread.sleep;
 
@@ -98,4 +108,165 @@ public class TimingTest {
         new SwingWrapper<>(chart).displayChart();
         sleep(50000);
     }
+
+    @Test
+    void ingestTest() {
+        // single puts versus one putAll of the same batch into an already-populated tree
+        int N = 200000; // number of nodes already in the tree, and in the batch
+        int K = 8; // dimension of nodes
+        Random rand = new Random();
+        Map<Position, Integer> initial = new HashMap<>();
+        Map<Position, Integer> batch = new HashMap<>();
+        for (int i = 0; i < 2 * N; i++) {
+            double[] pos = new double[K];
+            for (int j = 0; j < K; j++) {
+                pos[j] = rand.nextDouble();
+            }
+            (i < N ? initial : batch).put(new Position(pos), i);
+        }
+
+        PSPTreeMap<Integer> p = new PSPTreeMap<>(new EuclideanMetric(), K);
+        Stopwatch timer = Stopwatch.createStarted();
+        for (Map.Entry<Position, Integer> e : initial.entrySet()) {
+            p.put(e.getKey(), e.getValue());
+        }
+        timer.stop();
+        System.out.println("put: " + N + " nodes in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
+
+        timer = Stopwatch.createStarted();
+        p.putAll(batch);
+        timer.stop();
+        System.out.println("putAll: " + N + " nodes into a tree of " + N + " in "
+                + timer.elapsed(TimeUnit.MILLISECONDS) + " ms on "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+    }
+
+    @Test
+    void kNearestNeighborGraphTest() {
+        // kNN graph from one kNearestNeighborGraph join versus one search per entry,
+        // in time and in distances computed per entry
+        int N = 100000; // number of nodes in the tree
+        int K = 8; // dimension of nodes
+        int k = 10; // neighbours per node
+        Random rand = new Random();
+        LongAdder calls = new LongAdder(); // the join computes distances on several threads
+        DistanceMetric metric = new DistanceMetric() {
+            final EuclideanMetric euclidean = new EuclideanMetric();
+            @Override
+            public double distBetween(double[] pos1, double[] pos2) {
+                calls.increment();
+                return euclidean.distBetween(pos1, pos2);
+            }
+        };
+        PSPTreeMap<Integer> p = new PSPTreeMap<>(metric, K);
+        for (int i = 0; i < N; i++) {
+            double[] pos = new double[K];
+            for (int j = 0; j < K; j++) {
+                pos[j] = rand.nextDouble();
+            }
+            p.put(new Position(pos), i);
+        }
+
+        calls.reset();
+        Stopwatch timer = Stopwatch.createStarted();
+        for (Position pos : p.keySet()) {
+            p.kNearestNeighbor(pos, k + 1);
+        }
+        timer.stop();
+        System.out.println("per-entry kNearestNeighbor: " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms, "
+                + calls.sum() / N + " distances per entry");
+
+        calls.reset();
+        timer = Stopwatch.createStarted();
+        p.kNearestNeighborGraph(k);
+        timer.stop();
+        System.out.println("kNearestNeighborGraph: " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms on "
+                + Runtime.getRuntime().availableProcessors() + " cores, "
+                + calls.sum() / N + " distances per entry");
+    }
+
+    @Test
+    void vantageSelectionTest() {
+        // nodes visited (= distances computed) per 10-NN query for an insert-built tree
+        // and for bulk builds with each vantage selection strategy, on skewed data
+        int N = 100000; // number of nodes in each tree
+        int Q = 1000; // number of queries
+        int K = 16; // dimension of nodes
+        Random rand = new Random(0);
+        Map<Position, Integer> points = new HashMap<>();
+        for (int i = 0; i < N; i++) {
+            double[] pos = new double[K];
+            for (int j = 0; j < K; j++) { // most variance in the first few coordinates
+                pos[j] = rand.nextGaussian() / (j + 1) + (i % 10 == 0 ? 5 : 0);
+            }
+            points.put(new Position(pos), i);
+        }
+        Position[] queries = points.keySet().toArray(new Position[0]);
+
+        long[] visits = new long[1];
+        DistanceMetric metric = new DistanceMetric() {
+            final EuclideanMetric euclidean = new EuclideanMetric();
+            @Override
+            public double distBetween(double[] pos1, double[] pos2) {
+                visits[0]++;
+                return euclidean.distBetween(pos1, pos2);
+            }
+        };
+        String[] names = {"inserted", "random", "spread", "farthest"};
+        VantageSelector[] selectors = {new RandomVantageSelector(), new RandomVantageSelector(),
+            new SpreadVantageSelector(), new FarthestVantageSelector()};
+        for (int s = 0; s < names.length; s++) {
+            PSPTreeMap<Integer> p = new PSPTreeMap<>(metric, K, selectors[s], 42);
+            if (s == 0) {
+                for (Map.Entry<Position, Integer> e : points.entrySet()) {
+                    p.put(e.getKey(), e.getValue());
+                }
+            } else {
+                p.putAll(points);
+            }
+            visits[0] = 0;
+            for (int q = 0; q < Q; q++) {
+                p.kNearestNeighbor(queries[rand.nextInt(N)], 10);
+            }
+            System.out.println(names[s] + ": " + visits[0] / Q + " nodes visited per query");
+        }
+    }
+
+    @Test
+    void journalOverheadTest() throws IOException {
+        // put throughput with no journal and with each journal sync policy
+        int N = 100000; // number of nodes to insert for each configuration
+        int K = 8; // dimension of nodes
+        Random rand = new Random();
+        double[][] points = new double[N][K];
+        for (double[] pos : points) {
+            for (int j = 0; j < K; j++) {
+                pos[j] = rand.nextDouble();
+            }
+        }
+
+        PSPJournal.SyncPolicy[] policies = PSPJournal.SyncPolicy.values();
+        for (int c = -1; c < policies.length; c++) {
+            PSPTreeMap<Integer> p = new PSPTreeMap<>(new EuclideanMetric(), K);
+            PSPJournal<Integer> journal = null;
+            if (c >= 0) {
+                journal = PSPJournal.open(Files.createTempDirectory("psp-journal"),
+                        PSPJournal.serializingCodec(), policies[c], 64);
+                p.attachJournal(journal);
+            }
+            int n = c == 0 ? N / 100 : N; // fsync per put is orders of magnitude slower
+            Stopwatch timer = Stopwatch.createStarted();
+            for (int i = 0; i < n; i++) {
+                p.put(new Position(points[i]), i);
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            timer.stop();
+            String name = c < 0 ? "no journal" : policies[c].toString();
+            long ms = Math.max(1, timer.elapsed(TimeUnit.MILLISECONDS));
+            System.out.println(name + ": " + n + " puts in " + ms + " ms ("
+                    + (n * 1000L / ms) + " puts/s)");
+        }
+    }
 }